@@ -29,6 +29,10 @@ android {
         sourceCompatibility = JavaVersion.VERSION_11
         targetCompatibility = JavaVersion.VERSION_11
     }
+    testOptions {
+        // android.util.Log is called from plain JVM tests (RadioStatsTest)
+        unitTests.isReturnDefaultValues = true
+    }
 }
 
 dependencies {
@@ -8,6 +8,7 @@ import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanSettings;
 import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.content.pm.PackageManager;
@@ -49,6 +50,11 @@ public class MainActivity extends AppCompatActivity {
     private BluetoothAdapter adapter;
     private Button scanButton;
     private BluetoothGatt gatt;
+    // scan / connection / notification counters for battery investigation, shared by the whole process
+    private RadioStats radioStats;
+    // radio policy, recorded with the stats so the energy / latency of each setting can be compared
+    private static final int SCAN_MODE = ScanSettings.SCAN_MODE_LOW_POWER; // same as startScan(callback)
+    private static final int CONNECTION_PRIORITY = BluetoothGatt.CONNECTION_PRIORITY_BALANCED; // android default
 
     // replace with actual UUID and pi name
     private static final String TARGET_NAME = "RPi";
@@ -70,6 +76,7 @@ public class MainActivity extends AppCompatActivity {
         public void onScanResult(int callbackType, ScanResult result) {
             Log.d(TAG, "-----------------------------------------------------");
             Log.d(TAG, "onScanResult called");
+            radioStats.scanResult();
 
             BluetoothDevice device = result.getDevice();
             String name = device.getName();
@@ -108,10 +115,12 @@ public class MainActivity extends AppCompatActivity {
 
             if (nameMatch || serviceMatch) {
                 Log.d(TAG, "TARGET DEVICE FOUND!");
+                radioStats.targetFound();
 
                 runOnUiThread(() -> status.setText("Device found: " + (name != null ? name : device.getAddress())));
 
                 scanner.stopScan(this);
+                radioStats.scanStopped();
                 Log.d(TAG, "Scan stopped");
 
                 // Double-check permissions before connecting
@@ -137,6 +146,10 @@ public class MainActivity extends AppCompatActivity {
         @Override
         public void onScanFailed(int errorCode) {
             Log.e(TAG, "SCAN FAILED! Error code: " + errorCode);
+            // already started means the earlier scan is still running, anything else means it never started
+            if (errorCode != SCAN_FAILED_ALREADY_STARTED) {
+                radioStats.scanFailed();
+            }
             runOnUiThread(() -> status.setText("Scan failed: " + errorCode));
         }
     };
@@ -152,7 +165,9 @@ public class MainActivity extends AppCompatActivity {
             return;
         }
         status.setText("Scanning...");
-        scanner.startScan(scanCallback);
+        ScanSettings settings = new ScanSettings.Builder().setScanMode(SCAN_MODE).build();
+        scanner.startScan(null, settings, scanCallback);
+        radioStats.scanStarted();
     }
 
     /* Gatt connection setup*/
@@ -173,6 +188,7 @@ public class MainActivity extends AppCompatActivity {
         runOnUiThread(() -> status.setText("Permissions OK, creating GATT connection..."));
 
         try {
+            radioStats.connectAttempt();
             gatt = device.connectGatt(getApplicationContext(), false, gattCallback);
 
             if (gatt != null) {
@@ -193,13 +209,16 @@ public class MainActivity extends AppCompatActivity {
         @SuppressLint({"SetTextI18n", "MissingPermission"})
         public void onConnectionStateChange(BluetoothGatt g, int statusGatt, int newState) {
             if (statusGatt != BluetoothGatt.GATT_SUCCESS) {
+                radioStats.increment(RadioStats.Stat.GATT_ERRORS);
                 runOnUiThread(() -> status.setText("GATT error: " + statusGatt));
                 closeGatt();
                 return;
             }
             if (newState == BluetoothProfile.STATE_CONNECTED) {
+                radioStats.connected();
                 runOnUiThread(() -> status.setText("Connected. Discovering services..."));
                 gatt = g;
+                gatt.requestConnectionPriority(CONNECTION_PRIORITY);
                 gatt.discoverServices();
             } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                 runOnUiThread(() -> status.setText("Disconnected"));
@@ -274,6 +293,7 @@ public class MainActivity extends AppCompatActivity {
 
     @SuppressLint("MissingPermission")
     private void closeGatt() {
+        radioStats.disconnected();
         if (gatt != null) {
             gatt.close();
             gatt = null;
@@ -290,6 +310,7 @@ public class MainActivity extends AppCompatActivity {
         Button testAlert = findViewById(R.id.testAlert);
         scanButton = findViewById(R.id.scanNConnect);
         phoneInput = findViewById(R.id.phoneNumberInput);
+        radioStats = RadioStats.get(this, policyName());
 
         // for notification permission on Android 13+
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
@@ -349,6 +370,60 @@ public class MainActivity extends AppCompatActivity {
             status.setText("Calling " + numberToCall + "...");
             handlePhoneCall(numberToCall);
         });
+
+        Button radioStatsButton = findViewById(R.id.radioStats);
+        radioStatsButton.setOnClickListener(v -> showRadioStats());
+    }
+
+    @Override protected void onStop() {
+        super.onStop();
+        // save the running hour in case the process gets killed in the background
+        radioStats.flush();
+    }
+
+    private static String policyName() {
+        String scan;
+        switch (SCAN_MODE) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY: scan = "low_latency"; break;
+            case ScanSettings.SCAN_MODE_BALANCED: scan = "balanced"; break;
+            case ScanSettings.SCAN_MODE_OPPORTUNISTIC: scan = "opportunistic"; break;
+            default: scan = "low_power"; break;
+        }
+        String conn;
+        switch (CONNECTION_PRIORITY) {
+            case BluetoothGatt.CONNECTION_PRIORITY_HIGH: conn = "high"; break;
+            case BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER: conn = "low_power"; break;
+            default: conn = "balanced"; break;
+        }
+        return "scan=" + scan + "/conn=" + conn;
+    }
+
+    // radio usage for this hour / last 24h / per policy, with a button to share the hourly csv as text
+    private void showRadioStats() {
+        // read on the stats thread, shown back on the ui thread
+        radioStats.summary(summary -> runOnUiThread(() -> {
+            if (isFinishing()) {
+                return;
+            }
+            TextView text = new TextView(this);
+            text.setTypeface(android.graphics.Typeface.MONOSPACE);
+            text.setPadding(48, 24, 48, 0);
+            text.setText(summary);
+
+            new android.app.AlertDialog.Builder(this)
+                    .setTitle("Radio Usage")
+                    .setView(text)
+                    .setPositiveButton("Export", (dialog, which) ->
+                            radioStats.exportCsv(csv -> runOnUiThread(() -> {
+                                Intent share = new Intent(Intent.ACTION_SEND);
+                                share.setType("text/plain");
+                                share.putExtra(Intent.EXTRA_SUBJECT, "Radio stats (CSV)");
+                                share.putExtra(Intent.EXTRA_TEXT, csv);
+                                startActivity(Intent.createChooser(share, "Export radio stats as CSV text"));
+                            })))
+                    .setNegativeButton("Close", null)
+                    .show();
+        }));
     }
 
     // c: data channel from pi
@@ -356,6 +431,7 @@ public class MainActivity extends AppCompatActivity {
     public void onCharacteristicUpdate(BluetoothGatt g, BluetoothGattCharacteristic c) {
         if (c.getUuid().equals(ALERT_CHAR_UUID)) {
             byte[] data = c.getValue();
+            radioStats.notified(data != null ? data.length : 0);
             String message = new String(data, StandardCharsets.UTF_8);
             runOnUiThread(() -> {
                 status.setText("Alert notify: " + message);
@@ -395,6 +471,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void showAlert(String message) {
+        radioStats.increment(RadioStats.Stat.ALERTS);
         NotificationCompat.Builder b = new NotificationCompat.Builder(this, CHANNEL_ID)
                 .setSmallIcon(android.R.drawable.stat_sys_warning)
                 .setContentTitle("ALERT!!!")
@@ -0,0 +1,641 @@
+package com.lichard49.bletutorial;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+// Radio / energy accounting for the scan -> connect -> notify pipeline.
+// Callbacks only touch atomics (no locks), everything is rolled up into one bucket per hour and policy
+// (scan mode / connection priority) so policies can be compared on radio time against find / connect latency.
+// Finished buckets are appended to radio_stats.csv, the running one is saved to radio_stats_current.csv
+// so it survives the app being killed. One instance per process, all disk work and the in-memory
+// history belong to a single background thread.
+public class RadioStats {
+    private static final String TAG = "BLE_Debug";
+    private static final String HISTORY_FILE = "radio_stats.csv";
+    private static final String CURRENT_FILE = "radio_stats_current.csv";
+    static final long HOUR_MS = 60L * 60L * 1000L;
+    // keep one week of history. The file is only rewritten once it holds a day more than that
+    static final int KEEP_HOURS = 24 * 7;
+    static final int TRIM_SLACK_HOURS = 24;
+    // a scan that has not failed within this long (or has delivered a result) really started
+    static final long SCAN_CONFIRM_MS = 5_000;
+
+    // column order in the csv files, do not reorder (only append)
+    public enum Stat {
+        SCAN_STARTS("scan_starts", false),
+        SCAN_STOPS("scan_stops", false),
+        SCAN_FAILURES("scan_failures", false),
+        SCAN_RESULTS("scan_results", false),
+        SCAN_MS("scan_ms", true),
+        TARGETS_FOUND("targets_found", false),
+        FIND_MS("find_ms", true), // scan start -> target found, summed
+        CONNECT_ATTEMPTS("connect_attempts", false),
+        CONNECTS("connects", false),
+        CONNECT_MS("connect_ms", true), // connectGatt -> connected, summed
+        DISCONNECTS("disconnects", false),
+        GATT_ERRORS("gatt_errors", false),
+        CONNECTED_MS("connected_ms", true),
+        NOTIFICATIONS("notifications", false),
+        NOTIFY_BYTES("notify_bytes", false),
+        ALERTS("alerts", false);
+
+        final String column;
+        final boolean duration;
+
+        Stat(String column, boolean duration) {
+            this.column = column;
+            this.duration = duration;
+        }
+    }
+
+    // wall time picks the hour bucket, elapsed time measures durations (does not jump with clock changes)
+    interface Clock {
+        long wallMillis();
+        long elapsedMillis();
+    }
+
+    static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override public long wallMillis() {
+            return System.currentTimeMillis();
+        }
+
+        @Override public long elapsedMillis() {
+            return SystemClock.elapsedRealtime();
+        }
+    };
+
+    private static final class Bucket {
+        final long hour; // epoch ms at the start of the hour
+        final String policy;
+        final AtomicLongArray values = new AtomicLongArray(Stat.values().length);
+        // set once the bucket is being written out, late adds must move to the current bucket
+        volatile boolean sealed;
+
+        Bucket(long hour, String policy) {
+            this.hour = hour;
+            this.policy = policy;
+        }
+
+        boolean isEmpty() {
+            for (int i = 0; i < values.length(); i++) {
+                if (values.get(i) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // copy of the running values, the bucket keeps counting
+        Row snapshot() {
+            long[] out = new long[values.length()];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = values.get(i);
+            }
+            return new Row(hour, policy, out);
+        }
+
+        // takes every value out of a retired bucket. Anything added after this is swept by the writer, see add()
+        Row drain() {
+            sealed = true;
+            long[] out = new long[values.length()];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = values.getAndSet(i, 0);
+            }
+            return new Row(hour, policy, out);
+        }
+    }
+
+    // one csv line: hour,hour_utc,policy,<stats>
+    static final class Row {
+        final long hour;
+        final String policy;
+        final long[] values;
+
+        Row(long hour, String policy, long[] values) {
+            this.hour = hour;
+            this.policy = policy;
+            this.values = values;
+        }
+
+        long get(Stat stat) {
+            return values[stat.ordinal()];
+        }
+
+        boolean isEmpty() {
+            for (long v : values) {
+                if (v != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String format() {
+            SimpleDateFormat fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:00'Z'", Locale.US);
+            fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+            StringBuilder sb = new StringBuilder().append(hour)
+                    .append(',').append(fmt.format(new Date(hour)))
+                    .append(',').append(policy);
+            for (long v : values) {
+                sb.append(',').append(v);
+            }
+            return sb.toString();
+        }
+
+        // null if the line is the header or malformed
+        static Row parse(String line) {
+            String[] parts = line.split(",");
+            if (parts.length < 3 || line.startsWith("hour")) {
+                return null;
+            }
+            try {
+                long[] values = new long[Stat.values().length];
+                // older files may have fewer columns, missing ones stay 0
+                for (int i = 3; i < parts.length && i - 3 < values.length; i++) {
+                    values[i - 3] = Long.parseLong(parts[i]);
+                }
+                return new Row(Long.parseLong(parts[0]), parts[2], values);
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Skipping bad radio stats row: " + line);
+                return null;
+            }
+        }
+    }
+
+    private static RadioStats instance;
+
+    private final File historyFile;
+    private final File currentFile;
+    private final Clock clock;
+    private final Executor io;
+    private final AtomicReference<Bucket> current;
+    private volatile String policy;
+    // 0 when idle. An open scan is -(elapsed start) until it is confirmed, then +(elapsed credited up to)
+    private final AtomicLong scanStartedAt = new AtomicLong(0);
+    // 0 when idle, otherwise elapsed time the open connection was last credited up to
+    private final AtomicLong connectedAt = new AtomicLong(0);
+    // 0 when idle, otherwise elapsed time of the startScan / connectGatt call, used for latency
+    private final AtomicLong scanBeganAt = new AtomicLong(0);
+    private final AtomicLong connectAttemptAt = new AtomicLong(0);
+    // buckets swapped out by bucket(), moved into history by the next io task
+    private final ConcurrentLinkedQueue<Bucket> retired = new ConcurrentLinkedQueue<>();
+    // finished buckets, oldest first. Only touched on the io thread
+    private final List<Row> history = new ArrayList<>();
+    // oldest hour still in the history file, only touched on the io thread
+    private long fileOldestHour = Long.MAX_VALUE;
+
+    public static synchronized RadioStats get(Context context, String policy) {
+        if (instance == null) {
+            instance = new RadioStats(context.getApplicationContext().getFilesDir(), policy,
+                    SYSTEM_CLOCK, Executors.newSingleThreadExecutor());
+        } else {
+            instance.setPolicy(policy);
+        }
+        return instance;
+    }
+
+    // io must run tasks one at a time in submission order
+    RadioStats(File dir, String policy, Clock clock, Executor io) {
+        this.historyFile = new File(dir, HISTORY_FILE);
+        this.currentFile = new File(dir, CURRENT_FILE);
+        this.clock = clock;
+        this.io = io;
+        this.policy = cleanPolicy(policy);
+        this.current = new AtomicReference<>(new Bucket(hourOf(clock.wallMillis()), this.policy));
+        // queued first, so every flush / rotation / read below runs after the saved state is loaded
+        io.execute(this::restore);
+    }
+
+    // ---- recording, safe to call from any binder / ui thread ----
+
+    // tag for the scan mode / connection priority in use, starts a new bucket when it changes
+    public void setPolicy(String policy) {
+        this.policy = cleanPolicy(policy);
+        bucket();
+    }
+
+    private static String cleanPolicy(String policy) {
+        return policy.replace(',', ';');
+    }
+
+    public void increment(Stat stat) {
+        add(bucket(), stat, 1);
+    }
+
+    // adds to b, or to the current bucket if b was retired and already drained meanwhile
+    private void add(Bucket b, Stat stat, long delta) {
+        if (delta == 0) {
+            return;
+        }
+        int i = stat.ordinal();
+        b.values.addAndGet(i, delta);
+        if (b.sealed) {
+            // drain() may have run before our add, sweep whatever it did not take
+            long late = b.values.getAndSet(i, 0);
+            add(bucket(), stat, late);
+        }
+    }
+
+    // call after startScan(). It is only counted once confirmed, a second call while a scan is open is not a new scan
+    public void scanStarted() {
+        bucket();
+        long now = clock.elapsedMillis();
+        if (scanStartedAt.compareAndSet(0, -now)) {
+            scanBeganAt.set(now);
+        }
+    }
+
+    public void scanResult() {
+        Bucket b = bucket();
+        add(b, Stat.SCAN_RESULTS, 1);
+        confirmScan(b, Long.MAX_VALUE);
+    }
+
+    public void scanStopped() {
+        Bucket b = bucket();
+        long now = clock.elapsedMillis();
+        scanBeganAt.set(0);
+        long v = scanStartedAt.getAndSet(0);
+        if (v < 0) {
+            // ran until stopped without failing, so it was a real scan
+            add(b, Stat.SCAN_STARTS, 1);
+        }
+        if (v != 0) {
+            add(b, Stat.SCAN_STOPS, 1);
+            add(b, Stat.SCAN_MS, now - Math.abs(v));
+        }
+    }
+
+    // the open scan was rejected. If it was never confirmed nothing of it was counted yet, so only the failure is
+    public void scanFailed() {
+        Bucket b = bucket();
+        long now = clock.elapsedMillis();
+        scanBeganAt.set(0);
+        long v = scanStartedAt.getAndSet(0);
+        if (v != 0) {
+            add(b, Stat.SCAN_FAILURES, 1);
+        }
+        if (v > 0) {
+            // failed after running for a while, close it like a stop
+            add(b, Stat.SCAN_STOPS, 1);
+            add(b, Stat.SCAN_MS, now - v);
+        }
+    }
+
+    public void targetFound() {
+        Bucket b = bucket();
+        long began = scanBeganAt.getAndSet(0);
+        if (began != 0) {
+            add(b, Stat.TARGETS_FOUND, 1);
+            add(b, Stat.FIND_MS, clock.elapsedMillis() - began);
+        }
+    }
+
+    public void connectAttempt() {
+        Bucket b = bucket();
+        connectAttemptAt.set(clock.elapsedMillis());
+        add(b, Stat.CONNECT_ATTEMPTS, 1);
+    }
+
+    public void connected() {
+        Bucket b = bucket();
+        long now = clock.elapsedMillis();
+        if (connectedAt.compareAndSet(0, now)) {
+            add(b, Stat.CONNECTS, 1);
+            long attempt = connectAttemptAt.getAndSet(0);
+            if (attempt != 0) {
+                add(b, Stat.CONNECT_MS, now - attempt);
+            }
+        }
+    }
+
+    public void disconnected() {
+        Bucket b = bucket();
+        long now = clock.elapsedMillis();
+        connectAttemptAt.set(0);
+        long start = connectedAt.getAndSet(0);
+        if (start != 0) {
+            add(b, Stat.DISCONNECTS, 1);
+            add(b, Stat.CONNECTED_MS, now - start);
+        }
+    }
+
+    public void notified(int bytes) {
+        Bucket b = bucket();
+        add(b, Stat.NOTIFICATIONS, 1);
+        add(b, Stat.NOTIFY_BYTES, bytes);
+    }
+
+    public boolean isScanning() {
+        return scanStartedAt.get() != 0;
+    }
+
+    public boolean isConnected() {
+        return connectedAt.get() != 0;
+    }
+
+    // returns the bucket for the current hour and policy, rotating out the old one if either changed
+    private Bucket bucket() {
+        Bucket b = current.get();
+        long wall = clock.wallMillis();
+        long hour = hourOf(wall);
+        if (b.hour == hour && b.policy.equals(policy)) {
+            return b;
+        }
+        Bucket next = new Bucket(hour, policy);
+        if (!current.compareAndSet(b, next)) {
+            return current.get();
+        }
+        // only the thread that won the swap splits open timers and retires the finished buckets
+        long elapsed = clock.elapsedMillis();
+        // end of the old hour, or now if only the policy changed
+        long end = Math.min(b.hour + HOUR_MS, wall);
+        creditTimers(b, elapsed - (wall - end));
+        retired.add(b);
+        // hours where nothing was recorded still get their share of a long scan / connection
+        for (long h = Math.max(b.hour + HOUR_MS, hour - KEEP_HOURS * HOUR_MS); h < hour; h += HOUR_MS) {
+            Bucket gap = new Bucket(h, b.policy);
+            creditTimers(gap, elapsed - (wall - (h + HOUR_MS)));
+            if (!gap.isEmpty()) {
+                retired.add(gap);
+            }
+        }
+        io.execute(this::drainRetired);
+        return next;
+    }
+
+    // moves the open scan / connection timers up to `until`, crediting the time so far to b
+    private void creditTimers(Bucket b, long until) {
+        confirmScan(b, until);
+        add(b, Stat.SCAN_MS, takeUntil(scanStartedAt, until));
+        add(b, Stat.CONNECTED_MS, takeUntil(connectedAt, until));
+    }
+
+    // counts an open scan once it has run SCAN_CONFIRM_MS by `until`, unconfirmed scans are never credited
+    private void confirmScan(Bucket b, long until) {
+        while (true) {
+            long v = scanStartedAt.get();
+            if (v >= 0 || (until != Long.MAX_VALUE && until + v < SCAN_CONFIRM_MS)) {
+                return;
+            }
+            if (scanStartedAt.compareAndSet(v, -v)) {
+                add(b, Stat.SCAN_STARTS, 1);
+                return;
+            }
+        }
+    }
+
+    private static long takeUntil(AtomicLong timer, long until) {
+        while (true) {
+            long start = timer.get();
+            if (start <= 0 || start >= until) {
+                return 0;
+            }
+            if (timer.compareAndSet(start, until)) {
+                // a bucket never holds more than its hour, e.g. after more than a week without events
+                return Math.min(until - start, HOUR_MS);
+            }
+        }
+    }
+
+    // ---- persistence, io thread ----
+
+    // saves the running bucket, call from onStop
+    public void flush() {
+        creditTimers(bucket(), clock.elapsedMillis());
+        io.execute(() -> {
+            drainRetired();
+            // whatever is current when the write runs, a bucket retired in between is already in history
+            writeRows(currentFile, Collections.singletonList(current.get().snapshot()), false);
+        });
+    }
+
+    // moves retired buckets into the history. Every io task that reads history or the current file calls this first
+    private void drainRetired() {
+        boolean drained = false;
+        Bucket b;
+        while ((b = retired.poll()) != null) {
+            Row row = b.drain();
+            if (!row.isEmpty()) {
+                appendHistory(row);
+            }
+            drained = true;
+        }
+        if (drained) {
+            // the saved running bucket is now in the history
+            currentFile.delete();
+        }
+    }
+
+    private void restore() {
+        for (String line : readLines(historyFile)) {
+            Row row = Row.parse(line);
+            if (row != null) {
+                history.add(row);
+                fileOldestHour = Math.min(fileOldestHour, row.hour);
+            }
+        }
+        List<String> saved = readLines(currentFile);
+        Row row = saved.isEmpty() ? null : Row.parse(saved.get(saved.size() - 1));
+        if (row != null && !row.isEmpty()) {
+            Bucket b = current.get();
+            if (row.hour == b.hour && row.policy.equals(b.policy)) {
+                // same bucket, keep counting on top of what was saved
+                for (Stat stat : Stat.values()) {
+                    add(b, stat, row.get(stat));
+                }
+            } else {
+                appendHistory(row);
+            }
+        }
+        currentFile.delete();
+        trimHistory();
+    }
+
+    private void appendHistory(Row row) {
+        history.add(row);
+        fileOldestHour = Math.min(fileOldestHour, row.hour);
+        writeRows(historyFile, Collections.singletonList(row), true);
+        trimHistory();
+    }
+
+    // drops rows older than a week from memory, the file is only rewritten once it is a day past that
+    private void trimHistory() {
+        long cutoff = hourOf(clock.wallMillis()) - KEEP_HOURS * HOUR_MS;
+        history.removeIf(r -> r.hour < cutoff);
+        if (fileOldestHour >= cutoff - TRIM_SLACK_HOURS * HOUR_MS) {
+            return;
+        }
+        // rewrite next to the file and swap it in, so a crash never leaves it half written
+        File tmp = new File(historyFile.getPath() + ".tmp");
+        writeRows(tmp, history, false);
+        if (!tmp.renameTo(historyFile)) {
+            Log.e(TAG, "Failed to replace " + historyFile.getName());
+            return;
+        }
+        fileOldestHour = Long.MAX_VALUE;
+        for (Row r : history) {
+            fileOldestHour = Math.min(fileOldestHour, r.hour);
+        }
+    }
+
+    private List<String> readLines(File f) {
+        List<String> lines = new ArrayList<>();
+        if (!f.exists()) {
+            return lines;
+        }
+        try (BufferedReader r = new BufferedReader(new FileReader(f))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read " + f.getName(), e);
+        }
+        return lines;
+    }
+
+    private void writeRows(File f, List<Row> rows, boolean append) {
+        boolean header = !append || !f.exists() || f.length() == 0;
+        try (PrintWriter w = new PrintWriter(new FileWriter(f, append))) {
+            if (header) {
+                w.println(header());
+            }
+            for (Row row : rows) {
+                w.println(row.format());
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + f.getName(), e);
+        }
+    }
+
+    // ---- viewing / export, results are delivered on the io thread ----
+
+    // csv text of every stored bucket plus the running one, oldest first
+    public void exportCsv(Consumer<String> onReady) {
+        io.execute(() -> onReady.accept(csvNow()));
+    }
+
+    // human readable totals for the current hour, the last 24 hours and per policy
+    public void summary(Consumer<String> onReady) {
+        io.execute(() -> onReady.accept(summaryNow()));
+    }
+
+    // io thread only
+    String csvNow() {
+        StringBuilder sb = new StringBuilder(header()).append('\n');
+        for (Row row : rows()) {
+            sb.append(row.format()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // io thread only
+    String summaryNow() {
+        long hour = hourOf(clock.wallMillis());
+        long[] thisHour = totals(hour, null);
+        long[] day = totals(hour - 23 * HOUR_MS, null);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-18s %10s %10s%n", "", "this hour", "24 h"));
+        for (Stat s : Stat.values()) {
+            sb.append(String.format(Locale.US, "%-18s %10s %10s%n",
+                    s.column, format(s, thisHour[s.ordinal()]), format(s, day[s.ordinal()])));
+        }
+
+        sb.append("\nPer policy, last 24 h:\n");
+        Set<String> policies = new LinkedHashSet<>();
+        for (Row row : rows()) {
+            if (row.hour >= hour - 23 * HOUR_MS) {
+                policies.add(row.policy);
+            }
+        }
+        for (String p : policies) {
+            long[] t = totals(hour - 23 * HOUR_MS, p);
+            sb.append(p).append('\n').append(String.format(Locale.US,
+                    "  scan %s, connected %s, find avg %s, connect avg %s%n",
+                    format(Stat.SCAN_MS, t[Stat.SCAN_MS.ordinal()]),
+                    format(Stat.CONNECTED_MS, t[Stat.CONNECTED_MS.ordinal()]),
+                    average(t[Stat.FIND_MS.ordinal()], t[Stat.TARGETS_FOUND.ordinal()]),
+                    average(t[Stat.CONNECT_MS.ordinal()], t[Stat.CONNECTS.ordinal()])));
+        }
+        sb.append('\n').append("Policy: ").append(policy)
+                .append(", scanning: ").append(isScanning())
+                .append(", connected: ").append(isConnected());
+        return sb.toString();
+    }
+
+    // sums of every bucket from fromHour on, for one policy or all of them (null). io thread only
+    long[] totals(long fromHour, String policy) {
+        long[] sum = new long[Stat.values().length];
+        for (Row row : rows()) {
+            if (row.hour >= fromHour && (policy == null || policy.equals(row.policy))) {
+                for (int i = 0; i < sum.length; i++) {
+                    sum[i] += row.values[i];
+                }
+            }
+        }
+        return sum;
+    }
+
+    // history plus the running bucket with open timers credited up to now. io thread only
+    List<Row> rows() {
+        creditTimers(bucket(), clock.elapsedMillis());
+        // a rotation just now only queued its buckets, take them before reading history
+        drainRetired();
+        List<Row> rows = new ArrayList<>(history);
+        rows.add(current.get().snapshot());
+        return rows;
+    }
+
+    private static String format(Stat s, long v) {
+        if (s.duration) {
+            return String.format(Locale.US, "%.1fs", v / 1000.0);
+        }
+        return Long.toString(v);
+    }
+
+    private static String average(long totalMs, long count) {
+        return count == 0 ? "-" : (totalMs / count) + " ms (" + count + ")";
+    }
+
+    // ---- helpers ----
+
+    static long hourOf(long millis) {
+        return millis - (millis % HOUR_MS);
+    }
+
+    static String header() {
+        StringBuilder sb = new StringBuilder("hour,hour_utc,policy");
+        for (Stat s : Stat.values()) {
+            sb.append(',').append(s.column);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,352 @@
+package com.lichard49.bletutorial;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local tests for the hourly radio accounting, with a fake clock and the io work run in order on the calling thread.
+ */
+public class RadioStatsTest {
+    private static final long HOUR = RadioStats.HOUR_MS;
+    private static final long MINUTE = 60L * 1000L;
+    private static final long H0 = 480_000 * HOUR; // some hour in 2024
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FakeClock clock;
+    private File dir;
+
+    private static final class FakeClock implements RadioStats.Clock {
+        long wall = H0;
+        long elapsed = 5_000;
+
+        void advance(long ms) {
+            wall += ms;
+            elapsed += ms;
+        }
+
+        @Override public long wallMillis() {
+            return wall;
+        }
+
+        @Override public long elapsedMillis() {
+            return elapsed;
+        }
+    }
+
+    // runs tasks one at a time like the real single thread executor, tasks queued by a task run after it
+    private static final class SerialExecutor implements Executor {
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+
+        @Override public void execute(Runnable task) {
+            tasks.add(task);
+            if (running) {
+                return;
+            }
+            running = true;
+            try {
+                Runnable next;
+                while ((next = tasks.poll()) != null) {
+                    next.run();
+                }
+            } finally {
+                running = false;
+            }
+        }
+    }
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        dir = tmp.getRoot();
+    }
+
+    private RadioStats newStats() {
+        return new RadioStats(dir, "test", clock, new SerialExecutor());
+    }
+
+    private static RadioStats.Row rowFor(List<RadioStats.Row> rows, long hour) {
+        for (RadioStats.Row row : rows) {
+            if (row.hour == hour) {
+                return row;
+            }
+        }
+        fail("no row for hour " + hour);
+        return null;
+    }
+
+    @Test
+    public void row_roundTrip() {
+        long[] values = new long[RadioStats.Stat.values().length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 7L;
+        }
+        RadioStats.Row row = new RadioStats.Row(H0, "scan=low_power/conn=balanced", values);
+        RadioStats.Row parsed = RadioStats.Row.parse(row.format());
+
+        assertNotNull(parsed);
+        assertEquals(H0, parsed.hour);
+        assertEquals("scan=low_power/conn=balanced", parsed.policy);
+        assertArrayEquals(values, parsed.values);
+        assertNull(RadioStats.Row.parse(RadioStats.header()));
+        assertNull(RadioStats.Row.parse("123,x,p,notanumber"));
+    }
+
+    @Test
+    public void hourRotation_appendsFinishedHourToFile() throws Exception {
+        RadioStats stats = newStats();
+        stats.notified(12);
+        clock.advance(HOUR);
+        stats.increment(RadioStats.Stat.ALERTS);
+
+        List<String> lines = Files.readAllLines(new File(dir, "radio_stats.csv").toPath());
+        assertEquals(2, lines.size());
+        assertEquals(RadioStats.header(), lines.get(0));
+        RadioStats.Row saved = RadioStats.Row.parse(lines.get(1));
+        assertEquals(H0, saved.hour);
+        assertEquals(1, saved.get(RadioStats.Stat.NOTIFICATIONS));
+        assertEquals(12, saved.get(RadioStats.Stat.NOTIFY_BYTES));
+        assertEquals(0, saved.get(RadioStats.Stat.ALERTS));
+    }
+
+    @Test
+    public void export_rightAfterIdleHourBoundary_includesFinishedHour() {
+        RadioStats stats = newStats();
+        stats.notified(3);
+        clock.advance(61 * MINUTE);
+
+        String[] csv = new String[1];
+        stats.exportCsv(text -> csv[0] = text);
+
+        String[] lines = csv[0].split("\n");
+        assertEquals(3, lines.length);
+        RadioStats.Row finished = RadioStats.Row.parse(lines[1]);
+        assertEquals(H0, finished.hour);
+        assertEquals(1, finished.get(RadioStats.Stat.NOTIFICATIONS));
+        assertEquals(H0 + HOUR, RadioStats.Row.parse(lines[2]).hour);
+    }
+
+    @Test
+    public void openConnection_isSplitAcrossHours() {
+        RadioStats stats = newStats();
+        clock.advance(30 * MINUTE);
+        stats.connected();
+        // nothing is recorded while the link is up
+        clock.advance(3 * HOUR + 45 * MINUTE);
+        stats.disconnected();
+
+        List<RadioStats.Row> rows = stats.rows();
+        assertEquals(30 * MINUTE, rowFor(rows, H0).get(RadioStats.Stat.CONNECTED_MS));
+        assertEquals(HOUR, rowFor(rows, H0 + HOUR).get(RadioStats.Stat.CONNECTED_MS));
+        assertEquals(HOUR, rowFor(rows, H0 + 2 * HOUR).get(RadioStats.Stat.CONNECTED_MS));
+        assertEquals(HOUR, rowFor(rows, H0 + 3 * HOUR).get(RadioStats.Stat.CONNECTED_MS));
+        assertEquals(15 * MINUTE, rowFor(rows, H0 + 4 * HOUR).get(RadioStats.Stat.CONNECTED_MS));
+    }
+
+    @Test
+    public void flush_creditsOpenScanToTheRightHours() {
+        RadioStats stats = newStats();
+        clock.advance(50 * MINUTE);
+        stats.scanStarted();
+        clock.advance(20 * MINUTE);
+        stats.flush();
+
+        assertTrue(stats.isScanning());
+        List<RadioStats.Row> rows = stats.rows();
+        assertEquals(10 * MINUTE, rowFor(rows, H0).get(RadioStats.Stat.SCAN_MS));
+        assertEquals(10 * MINUTE, rowFor(rows, H0 + HOUR).get(RadioStats.Stat.SCAN_MS));
+    }
+
+    @Test
+    public void history_isTrimmedToOneWeek_inBatches() throws Exception {
+        RadioStats stats = newStats();
+        for (int i = 0; i < RadioStats.KEEP_HOURS + 30; i++) {
+            stats.increment(RadioStats.Stat.ALERTS);
+            clock.advance(HOUR);
+        }
+        stats.increment(RadioStats.Stat.ALERTS);
+
+        List<RadioStats.Row> rows = stats.rows();
+        assertEquals(RadioStats.KEEP_HOURS + 1, rows.size());
+        assertEquals(H0 + 30 * HOUR, rows.get(0).hour);
+
+        // the file was trimmed once it got a day over, and is not rewritten for every hour after that
+        int fileRows = Files.readAllLines(new File(dir, "radio_stats.csv").toPath()).size() - 1;
+        assertTrue(fileRows > RadioStats.KEEP_HOURS);
+        assertTrue(fileRows <= RadioStats.KEEP_HOURS + RadioStats.TRIM_SLACK_HOURS);
+
+        // a fresh process sees the same week
+        List<RadioStats.Row> restored = newStats().rows();
+        assertEquals(RadioStats.KEEP_HOURS + 1, restored.size());
+        assertEquals(H0 + 30 * HOUR, restored.get(0).hour);
+    }
+
+    @Test
+    public void history_keepsAWeekWithSeveralPolicies() {
+        RadioStats stats = newStats();
+        for (int i = 0; i < RadioStats.KEEP_HOURS + 30; i++) {
+            stats.setPolicy("a");
+            stats.increment(RadioStats.Stat.ALERTS);
+            stats.setPolicy("b");
+            stats.increment(RadioStats.Stat.ALERTS);
+            clock.advance(HOUR);
+        }
+
+        long cutoff = RadioStats.hourOf(clock.wall) - RadioStats.KEEP_HOURS * HOUR;
+        assertEquals(2 * RadioStats.KEEP_HOURS, stats.totals(cutoff, null)[RadioStats.Stat.ALERTS.ordinal()]);
+        assertEquals(RadioStats.KEEP_HOURS, stats.totals(cutoff, "a")[RadioStats.Stat.ALERTS.ordinal()]);
+    }
+
+    @Test
+    public void totals_onlyCountTheLast24Hours() {
+        RadioStats stats = newStats();
+        for (int i = 0; i < 30; i++) {
+            stats.increment(RadioStats.Stat.ALERTS);
+            clock.advance(HOUR);
+        }
+        stats.increment(RadioStats.Stat.ALERTS);
+
+        long hour = RadioStats.hourOf(clock.wall);
+        assertEquals(24, stats.totals(hour - 23 * HOUR, null)[RadioStats.Stat.ALERTS.ordinal()]);
+        assertEquals(31, stats.totals(0, null)[RadioStats.Stat.ALERTS.ordinal()]);
+    }
+
+    @Test
+    public void restore_mergesSavedRunningHour() {
+        RadioStats first = newStats();
+        first.notified(4);
+        first.flush();
+
+        RadioStats second = newStats();
+        second.notified(6);
+        long[] totals = second.totals(0, null);
+        assertEquals(2, totals[RadioStats.Stat.NOTIFICATIONS.ordinal()]);
+        assertEquals(10, totals[RadioStats.Stat.NOTIFY_BYTES.ordinal()]);
+    }
+
+    @Test
+    public void restore_movesOldRunningHourToHistoryOnce() {
+        RadioStats first = newStats();
+        first.notified(4);
+        first.flush();
+
+        clock.advance(2 * HOUR);
+        RadioStats second = newStats();
+        clock.advance(HOUR);
+        second.increment(RadioStats.Stat.ALERTS);
+        second.flush();
+
+        RadioStats third = newStats();
+        assertEquals(1, third.totals(0, null)[RadioStats.Stat.NOTIFICATIONS.ordinal()]);
+        assertEquals(1, third.totals(0, null)[RadioStats.Stat.ALERTS.ordinal()]);
+    }
+
+    @Test
+    public void failedScan_isNotCounted() {
+        RadioStats stats = newStats();
+        stats.scanStarted();
+        // pressing scan again while scanning is not a new scan
+        stats.scanStarted();
+        clock.advance(2000);
+        // a flush before the failure arrives must not credit the unconfirmed scan
+        stats.flush();
+        stats.scanFailed();
+
+        long[] totals = stats.totals(0, null);
+        assertFalse(stats.isScanning());
+        assertEquals(0, totals[RadioStats.Stat.SCAN_STARTS.ordinal()]);
+        assertEquals(1, totals[RadioStats.Stat.SCAN_FAILURES.ordinal()]);
+        assertEquals(0, totals[RadioStats.Stat.SCAN_STOPS.ordinal()]);
+        assertEquals(0, totals[RadioStats.Stat.SCAN_MS.ordinal()]);
+    }
+
+    @Test
+    public void confirmedScan_isCountedAndCredited() {
+        RadioStats stats = newStats();
+        stats.scanStarted();
+        clock.advance(RadioStats.SCAN_CONFIRM_MS + 1000);
+        stats.flush();
+        // a failure after that does not take the scan back
+        stats.scanFailed();
+
+        long[] totals = stats.totals(0, null);
+        assertEquals(1, totals[RadioStats.Stat.SCAN_STARTS.ordinal()]);
+        assertEquals(1, totals[RadioStats.Stat.SCAN_FAILURES.ordinal()]);
+        assertEquals(RadioStats.SCAN_CONFIRM_MS + 1000, totals[RadioStats.Stat.SCAN_MS.ordinal()]);
+    }
+
+    @Test
+    public void scanResult_confirmsScanRightAway() {
+        RadioStats stats = newStats();
+        stats.scanStarted();
+        clock.advance(100);
+        stats.scanResult();
+        clock.advance(100);
+        stats.flush();
+
+        long[] totals = stats.totals(0, null);
+        assertEquals(1, totals[RadioStats.Stat.SCAN_STARTS.ordinal()]);
+        assertEquals(1, totals[RadioStats.Stat.SCAN_RESULTS.ordinal()]);
+        assertEquals(200, totals[RadioStats.Stat.SCAN_MS.ordinal()]);
+    }
+
+    @Test
+    public void restore_mergesSavedHourWithoutDuplicateRows() {
+        RadioStats first = newStats();
+        first.notified(4);
+        first.flush();
+
+        RadioStats second = newStats();
+        second.notified(6);
+        clock.advance(HOUR);
+        second.increment(RadioStats.Stat.ALERTS);
+
+        List<RadioStats.Row> rows = second.rows();
+        assertEquals(2, rows.size());
+        assertEquals(2, rowFor(rows, H0).get(RadioStats.Stat.NOTIFICATIONS));
+    }
+
+    @Test
+    public void latency_isRecordedPerPolicy() {
+        RadioStats stats = newStats();
+        stats.setPolicy("fast");
+        stats.scanStarted();
+        clock.advance(500);
+        stats.targetFound();
+        stats.scanStopped();
+        stats.connectAttempt();
+        clock.advance(200);
+        stats.connected();
+
+        stats.setPolicy("slow");
+        stats.scanStarted();
+        clock.advance(3000);
+        stats.targetFound();
+        stats.scanStopped();
+
+        long[] fast = stats.totals(0, "fast");
+        assertEquals(500, fast[RadioStats.Stat.FIND_MS.ordinal()]);
+        assertEquals(500, fast[RadioStats.Stat.SCAN_MS.ordinal()]);
+        assertEquals(200, fast[RadioStats.Stat.CONNECT_MS.ordinal()]);
+        // the link stays up, its time after the policy change belongs to the new policy
+        assertEquals(0, fast[RadioStats.Stat.CONNECTED_MS.ordinal()]);
+
+        long[] slow = stats.totals(0, "slow");
+        assertEquals(1, slow[RadioStats.Stat.TARGETS_FOUND.ordinal()]);
+        assertEquals(3000, slow[RadioStats.Stat.FIND_MS.ordinal()]);
+        assertEquals(3000, slow[RadioStats.Stat.CONNECTED_MS.ordinal()]);
+        assertEquals(0, slow[RadioStats.Stat.CONNECTS.ordinal()]);
+    }
+}